@@ -0,0 +1,244 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class ClusterRouter {
+
+    public static final String FORWARDED_HEADER = "X-Httpfs-Forwarded";
+
+    private static final int CONNECT_TIMEOUT = 3000;
+    private static final int READ_TIMEOUT = 30000;
+    // Shorter than the keep-alive timeout of the peer so pooled sockets are dropped before the peer closes them
+    private static final int POOL_IDLE_TIMEOUT = 30000;
+
+    private ConsistentHashRing ring;
+    private String self;
+    private int replicas;
+    private boolean isRouter;
+    private HashSet<InetAddress> peerAddresses;
+    private ConcurrentHashMap<String, ConcurrentLinkedQueue<PooledSocket>> pool;
+
+    public ClusterRouter(List<String> nodes, String self, int replicas, boolean isRouter) throws IOException {
+        this.ring = new ConsistentHashRing(nodes);
+        this.self = self;
+        this.replicas = replicas;
+        this.isRouter = isRouter;
+        this.pool = new ConcurrentHashMap<>();
+        this.peerAddresses = new HashSet<>();
+        for (String node : nodes) {
+            for (InetAddress address : InetAddress.getAllByName(node.split(":")[0])) {
+                this.peerAddresses.add(address);
+            }
+        }
+    }
+
+    // The ring is keyed on the normalized path so every spelling of a file has the same owners
+    public List<String> getOwners(String path) {
+        return ring.getOwners(normalizePath(path), replicas);
+    }
+
+    public static String normalizePath(String path) {
+        return Paths.get("/" + path).normalize().toString().replace('\\', '/');
+    }
+
+    public List<String> getNodes() {
+        return ring.getNodes();
+    }
+
+    public boolean isSelf(String node) {
+        return !isRouter && node.equals(self);
+    }
+
+    public boolean isRouter() {
+        return isRouter;
+    }
+
+    // The header is only trusted from the hosts of the cluster, a client could send it to bypass the ring
+    public boolean isForwarded(Request request, InetAddress remoteAddress) {
+        return request.getHeader(FORWARDED_HEADER) != null && peerAddresses.contains(remoteAddress);
+    }
+
+    public Response forward(String node, Request request) throws IOException {
+        String requestString = toForwardedRequestString(request);
+        Socket socket = borrow(node);
+
+        // A pooled connection may have been closed by the peer. Only a GET is sent again on a fresh one,
+        // a POST may already have been written by the peer.
+        if (socket != null) {
+            try {
+                return exchange(node, socket, requestString);
+            } catch (IOException e) {
+                closeQuietly(socket);
+                if (!request.getMethod().equals("GET")) {
+                    throw e;
+                }
+            }
+        }
+        return exchange(node, connect(node), requestString);
+    }
+
+    private Socket borrow(String node) {
+        ConcurrentLinkedQueue<PooledSocket> sockets = pool.computeIfAbsent(node, k -> new ConcurrentLinkedQueue<>());
+        PooledSocket pooled = sockets.poll();
+        while (pooled != null) {
+            if (System.currentTimeMillis() - pooled.lastUsed < POOL_IDLE_TIMEOUT && !pooled.socket.isClosed()) {
+                return pooled.socket;
+            }
+            closeQuietly(pooled.socket);
+            pooled = sockets.poll();
+        }
+        return null;
+    }
+
+    private Response exchange(String node, Socket socket, String requestString) throws IOException {
+        try {
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write(requestString.getBytes(StandardCharsets.ISO_8859_1));
+            outputStream.flush();
+            Response response = readResponse(socket.getInputStream());
+
+            String connection = response.getHeaders().remove("connection");
+            if (connection != null && connection.equalsIgnoreCase("keep-alive")) {
+                pool.get(node).offer(new PooledSocket(socket));
+            } else {
+                closeQuietly(socket);
+            }
+            return response;
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    private Socket connect(String node) throws IOException {
+        String[] hostPort = node.split(":");
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])), CONNECT_TIMEOUT);
+        socket.setSoTimeout(READ_TIMEOUT);
+        return socket;
+    }
+
+    private String toForwardedRequestString(Request request) {
+        String raw = request.toString();
+        int lineEnd = raw.indexOf("\r\n");
+        int headerEnd = raw.indexOf("\r\n\r\n");
+        String[] requestLine = raw.substring(0, lineEnd).split(" ");
+        String headers = raw.substring(lineEnd + 2, headerEnd + 2);
+        String body = raw.substring(headerEnd + 4);
+
+        // Peers get the normalized path, a trailing slash still asks for a listing
+        String path = normalizePath(request.getPath());
+        if (request.getPath().endsWith("/") && !path.endsWith("/")) {
+            path = path + "/";
+        }
+
+        // Drop any connection or forwarded header of the client, the pooled connection is always keep-alive
+        StringBuilder headerLines = new StringBuilder();
+        for (String line : headers.split("\r\n")) {
+            String lowerLine = line.toLowerCase();
+            if (line.length() > 0 && !lowerLine.startsWith("connection:")
+                    && !lowerLine.startsWith(FORWARDED_HEADER.toLowerCase() + ":")) {
+                headerLines.append(line).append("\r\n");
+            }
+        }
+        headerLines.append(FORWARDED_HEADER).append(": true\r\n");
+        headerLines.append("Connection: keep-alive\r\n");
+
+        String version = requestLine.length > 2 ? requestLine[2] : "HTTP/1.0";
+        return request.getMethod() + " " + path + " " + version + "\r\n" + headerLines + "\r\n" + body;
+    }
+
+    private Response readResponse(InputStream inputStream) throws IOException {
+        String statusLine = readLine(inputStream);
+        if (statusLine == null || !statusLine.startsWith("HTTP/")) {
+            throw new IOException("Invalid response from peer");
+        }
+        String status = statusLine.substring(statusLine.indexOf(' ') + 1);
+
+        HashMap<String, String> headers = new HashMap<>();
+        String line = readLine(inputStream);
+        while (line != null && line.length() > 0) {
+            int separator = line.indexOf(':');
+            if (separator > 0) {
+                headers.put(line.substring(0, separator).trim().toLowerCase(), line.substring(separator + 1).trim());
+            }
+            line = readLine(inputStream);
+        }
+        if (line == null) {
+            throw new IOException("Connection closed by peer");
+        }
+
+        int contentLength = headers.containsKey("content-length") ? Integer.parseInt(headers.remove("content-length")) : 0;
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] b = new byte[1024];
+        while (body.size() < contentLength) {
+            int len = inputStream.read(b, 0, Math.min(b.length, contentLength - body.size()));
+            if (len == -1) {
+                throw new IOException("Connection closed by peer");
+            }
+            body.write(b, 0, len);
+        }
+        headers.remove("server");
+
+        return new Response(status, headers, new String(body.toByteArray(), StandardCharsets.ISO_8859_1));
+    }
+
+    private String readLine(InputStream inputStream) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int data = inputStream.read();
+        while (data != -1) {
+            if (data == '\n') {
+                int len = line.length();
+                if (len > 0 && line.charAt(len - 1) == '\r') {
+                    line.setLength(len - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) data);
+            data = inputStream.read();
+        }
+        return null;
+    }
+
+    private void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class PooledSocket {
+
+        private Socket socket;
+        private long lastUsed;
+
+        private PooledSocket(Socket socket) {
+            this.socket = socket;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    public static List<String> parseNodes(String nodes) {
+        List<String> list = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            if (node.trim().length() > 0) {
+                list.add(node.trim());
+            }
+        }
+        return list;
+    }
+
+}
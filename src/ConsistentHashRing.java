@@ -0,0 +1,81 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class ConsistentHashRing {
+
+    private static final int DEFAULT_VIRTUAL_NODES = 100;
+
+    private TreeMap<Long, String> ring;
+    private List<String> nodes;
+    private int virtualNodes;
+
+    public ConsistentHashRing(List<String> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(List<String> nodes, int virtualNodes) {
+        this.ring = new TreeMap<>();
+        this.nodes = new ArrayList<>(nodes);
+        this.virtualNodes = virtualNodes;
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    // Walk clockwise from the key and collect the first distinct physical nodes
+    public List<String> getOwners(String key, int replicas) {
+        List<String> owners = new ArrayList<>();
+        if (ring.isEmpty()) {
+            return owners;
+        }
+        int count = Math.min(replicas, nodes.size());
+        long h = hash(key);
+        for (Map.Entry<Long, String> entry : ring.tailMap(h, true).entrySet()) {
+            if (owners.size() == count) {
+                return owners;
+            }
+            if (!owners.contains(entry.getValue())) {
+                owners.add(entry.getValue());
+            }
+        }
+        for (Map.Entry<Long, String> entry : ring.headMap(h, false).entrySet()) {
+            if (owners.size() == count) {
+                return owners;
+            }
+            if (!owners.contains(entry.getValue())) {
+                owners.add(entry.getValue());
+            }
+        }
+        return owners;
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    private static long hash(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] digest = md.digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xff);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -1,23 +1,46 @@
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.List;
 
 public class HttpfsService {
 
     private static final int DEFAULT_PORT = 8080;
     private static final boolean DEFAULT_IS_DEBUG = false;
     public static final String DEFAULT_DIRECTORY = ".";
+    private static final int DEFAULT_REPLICAS = 1;
+    private static final boolean DEFAULT_IS_ROUTER = false;
+    private static final int DEFAULT_FAST_LANE_LIMIT = 32;
+    private static final int DEFAULT_BULK_LANE_LIMIT = 2;
+    private static final long DEFAULT_BULK_THRESHOLD = 1024 * 1024;
+    private static final long DEFAULT_BULK_RATE = 4 * 1024 * 1024;
 
     private boolean isDebug;
     private int port;
     private String directory;
     private String[] args;
+    private int fastLaneLimit;
+    private int bulkLaneLimit;
+    private long bulkThreshold;
+    private long bulkRate;
+    private RequestScheduler scheduler;
+    private List<String> clusterNodes;
+    private String nodeName;
+    private int replicas;
+    private boolean isRouter;
+    private ClusterRouter cluster;
 
     public HttpfsService(String[] args) throws Exception {
         this.isDebug = DEFAULT_IS_DEBUG;
         this.port = DEFAULT_PORT;
         this.directory = DEFAULT_DIRECTORY;
         this.args = args;
+        this.fastLaneLimit = DEFAULT_FAST_LANE_LIMIT;
+        this.bulkLaneLimit = DEFAULT_BULK_LANE_LIMIT;
+        this.bulkThreshold = DEFAULT_BULK_THRESHOLD;
+        this.bulkRate = DEFAULT_BULK_RATE;
+        this.replicas = DEFAULT_REPLICAS;
+        this.isRouter = DEFAULT_IS_ROUTER;
         this.initService();
     }
 
@@ -32,7 +55,52 @@ public class HttpfsService {
                 }
             } else if (this.args[i].equals("-d")) {
                 this.directory = this.args[++i];
+            } else if (this.args[i].equals("-c")) {
+                this.clusterNodes = ClusterRouter.parseNodes(this.args[++i]);
+            } else if (this.args[i].equals("-n")) {
+                this.nodeName = this.args[++i];
+            } else if (this.args[i].equals("-r")) {
+                this.replicas = Integer.parseInt(this.args[++i]);
+                if (this.replicas < 1) {
+                    throw new Exception("[ERROR] Wrong replication factor");
+                }
+            } else if (this.args[i].equals("-router")) {
+                this.isRouter = true;
+            } else if (this.args[i].equals("-fl")) {
+                this.fastLaneLimit = Integer.parseInt(this.args[++i]);
+                if (this.fastLaneLimit < 1) {
+                    throw new Exception("[ERROR] Wrong fast lane limit");
+                }
+            } else if (this.args[i].equals("-bl")) {
+                this.bulkLaneLimit = Integer.parseInt(this.args[++i]);
+                if (this.bulkLaneLimit < 1) {
+                    throw new Exception("[ERROR] Wrong bulk lane limit");
+                }
+            } else if (this.args[i].equals("-bt")) {
+                this.bulkThreshold = Long.parseLong(this.args[++i]);
+                if (this.bulkThreshold < 0) {
+                    throw new Exception("[ERROR] Wrong bulk threshold");
+                }
+            } else if (this.args[i].equals("-br")) {
+                this.bulkRate = Long.parseLong(this.args[++i]);
+                if (this.bulkRate < 0) {
+                    throw new Exception("[ERROR] Wrong bulk rate");
+                }
+            }
+        }
+
+        this.scheduler = new RequestScheduler(this.fastLaneLimit, this.bulkLaneLimit, this.bulkThreshold, this.bulkRate);
+
+        if (this.clusterNodes != null && !this.clusterNodes.isEmpty()) {
+            if (this.nodeName == null) {
+                this.nodeName = "localhost:" + this.port;
+            }
+            if (!this.isRouter && !this.clusterNodes.contains(this.nodeName)) {
+                throw new Exception("[ERROR] Node " + this.nodeName + " is not in the cluster");
             }
+            this.cluster = new ClusterRouter(this.clusterNodes, this.nodeName, this.replicas, this.isRouter);
+        } else if (this.isRouter) {
+            throw new Exception("[ERROR] Router mode requires cluster nodes");
         }
     }
 
@@ -44,6 +112,9 @@ public class HttpfsService {
 
         ServerSocket serverSocket = new ServerSocket(port);
         System.out.println("[INFO] The server is listening on port " + port);
+        if (cluster != null) {
+            System.out.println("[INFO] Cluster mode " + (isRouter ? "router" : "node " + nodeName) + " with nodes " + clusterNodes);
+        }
 
         while (true) {
             try {
@@ -56,10 +127,6 @@ public class HttpfsService {
 
             } catch (IOException e) {
                 e.printStackTrace();
-            } catch (Exception e) {
-                if (e.getMessage().equals("Unsupported HTTP version")) {
-                    System.out.println("[INFO] Unsupported HTTP version");
-                }
             }
         }
 
@@ -78,5 +145,13 @@ public class HttpfsService {
         return directory;
     }
 
+    public RequestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public ClusterRouter getCluster() {
+        return cluster;
+    }
+
 }
 
@@ -1,12 +1,16 @@
 import java.io.*;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Objects;
 import java.util.Scanner;
+import java.util.TreeSet;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
@@ -23,20 +27,45 @@ public class HttpfsServiceThread extends Thread {
     private Response response;
     private Socket socket;
     private boolean isDebug;
+    private RequestScheduler scheduler;
+    private String lane;
+    private String permitLane;
+    private ClusterRouter cluster;
+    private boolean isKeepAlive;
+    private long contentLength;
 
+    private static final int KEEP_ALIVE_TIMEOUT = 60000;
+    private static final int REQUEST_TIMEOUT = 30000;
 
-    public HttpfsServiceThread(HttpfsService hfs, Socket socket) throws Exception {
+
+    public HttpfsServiceThread(HttpfsService hfs, Socket socket) {
         this.socket = socket;
         this.directory = hfs.getDirectory();
         this.isDebug = hfs.isDebug();
-        this.init();
+        this.scheduler = hfs.getScheduler();
+        this.cluster = hfs.getCluster();
     }
 
-    public void init() throws Exception {
-        String requestString = getRequestString();
-        if (requestString.length() == 0) {
-            throw new Exception("Unsupported HTTP version");
+    public void parseRequestHeader(String headerString) {
+        this.request = new Request(headerString);
+        String filePath = request.getPath();
+        this.path = Paths.get(directory + filePath);
+        this.file = new File(path.toString());
+        this.isKeepAlive = "keep-alive".equalsIgnoreCase(request.getHeader("Connection"));
+
+        // Requests outside the folder only get a 403, they never need the bulk lane
+        long size = -1;
+        if (isInsideFolder()) {
+            if (request.getMethod().equals("POST")) {
+                size = contentLength;
+            } else if (file.isFile()) {
+                size = file.length();
+            }
         }
+        this.lane = scheduler.getLane(request.getMethod(), size);
+    }
+
+    public void parseRequest(String requestString) {
         if (isDebug) {
             System.out.println("\n>>>>>>>>>>>>>>>>>>>>>>>");
             System.out.println(requestString);
@@ -44,46 +73,32 @@ public class HttpfsServiceThread extends Thread {
         }
 
         this.request = new Request(requestString);
-        String filePath = request.getPath();
-        this.path = Paths.get(directory + filePath);
-        this.file = new File(path.toString());
-
     }
 
-    public String getRequestString() throws IOException {
+    public String getRequestHeaderString() throws IOException {
 
         InputStream inputStream = socket.getInputStream();
-        // Create request reader
+        // Create request reader, the body is read later in the lane of the request
         StringBuilder requestString = new StringBuilder();
         int data = inputStream.read();
         StringBuilder line = new StringBuilder();
 
-        boolean isBody = false;
-        int content_length = 0;
+        contentLength = 0;
         while (data != -1) {
             requestString.append((char) data);
             line.append((char) data);
 
-            if (isBody) {
-                if (line.length() == content_length) {
-                    break;
-                }
-            } else {
-                if (line.toString().contains("\r\n")) {
-                    if (line.toString().toLowerCase().contains("content-length")) {
-                        Pattern pattern = Pattern.compile("content-length:\\s*(\\d+)");
-                        Matcher matcher = pattern.matcher(line.toString().toLowerCase());
-                        if (matcher.find()) {
-                            content_length = Integer.parseInt(matcher.group(1));
-                        }
-                    } else if (line.toString().equals("\r\n")) {
-                        isBody = true;
-                        if (content_length == 0) {
-                            break;
-                        }
+            if (line.toString().contains("\r\n")) {
+                if (line.toString().toLowerCase().contains("content-length")) {
+                    Pattern pattern = Pattern.compile("content-length:\\s*(\\d+)");
+                    Matcher matcher = pattern.matcher(line.toString().toLowerCase());
+                    if (matcher.find()) {
+                        contentLength = Long.parseLong(matcher.group(1));
                     }
-                    line = new StringBuilder();
+                } else if (line.toString().equals("\r\n")) {
+                    break;
                 }
+                line = new StringBuilder();
             }
 
             data = inputStream.read();
@@ -98,32 +113,115 @@ public class HttpfsServiceThread extends Thread {
             System.out.println("[INFO] " + Thread.currentThread().getName() + " is created for processing the request");
         }
 
-        if (!isInsideFolder()) {
-            noPermissionResponseHandler();
-        } else {
-            if (request.getMethod().equals("GET")) {
-                if (file.exists()) {
-                    if (file.isDirectory()) {
-                        readDirectoryHandler();
-                    } else if (file.isFile()) {
-                        readFileHandler();
+        boolean isFirstRequest = true;
+        while (true) {
+            try {
+                if (isFirstRequest) {
+                    socket.setSoTimeout(REQUEST_TIMEOUT);
+                }
+                String headerString = getRequestHeaderString();
+                if (headerString.length() == 0) {
+                    if (isFirstRequest) {
+                        System.out.println("[INFO] Unsupported HTTP version");
                     }
-                } else {
-                    fileNotExistResponseHandler();
+                    closeSocket();
+                    break;
                 }
+                parseRequestHeader(headerString);
+                isFirstRequest = false;
+                socket.setSoTimeout(REQUEST_TIMEOUT);
 
-            } else if (request.getMethod().equals("POST")) {
-                if (file.exists() && file.isDirectory()) {
-                    directoryAlreadyExistResponseHandler();
-                } else {
-                    writeFileHandler();
+                if (contentLength > RequestScheduler.MAX_BODY_LENGTH) {
+                    payloadTooLargeResponseHandler();
+                    isKeepAlive = false;
+                    try {
+                        sendResponse();
+                    } finally {
+                        releaseLane();
+                    }
+                    break;
                 }
 
-            } else {
-                methodNotAllowedResponseHandler();
+                try {
+                    // A fast lane body is small, read it before taking a permit so a stalled client holds none.
+                    // The bulk lane gates and paces the read of a bulk body.
+                    String body;
+                    if (lane.equals(RequestScheduler.FAST_LANE)) {
+                        body = scheduler.read(lane, socket.getInputStream(), contentLength);
+                        acquireLane(lane);
+                    } else {
+                        acquireLane(lane);
+                        body = scheduler.read(lane, socket.getInputStream(), contentLength);
+                    }
+                    parseRequest(headerString + body);
+                    handle();
+                } finally {
+                    releaseLane();
+                }
+
+                if (!isKeepAlive) {
+                    break;
+                }
+
+                // Wait for the next request on the same connection
+                socket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+            } catch (Exception e) {
+                if (isDebug) {
+                    System.out.println("[INFO] " + Thread.currentThread().getName() + " drops the connection: " + e.getMessage());
+                }
+                closeSocket();
+                break;
             }
         }
 
+        if (isDebug) {
+            System.out.println(Thread.currentThread().getName() + " finished");
+        }
+
+    }
+
+    public void acquireLane(String lane) throws InterruptedException {
+        scheduler.acquire(lane);
+        this.permitLane = lane;
+        if (isDebug) {
+            System.out.println("[INFO] " + Thread.currentThread().getName() + " is scheduled in the " + lane + " lane");
+        }
+    }
+
+    public void releaseLane() {
+        if (permitLane != null) {
+            scheduler.release(permitLane);
+            permitLane = null;
+        }
+    }
+
+    public void handle() throws InterruptedException {
+
+        if (!isInsideFolder()) {
+            noPermissionResponseHandler();
+        } else if (cluster != null && !cluster.isForwarded(request, socket.getInetAddress())) {
+            // Hold no permit while waiting on peers, they need their own permits to answer
+            releaseLane();
+            clusterHandler();
+        } else {
+            localHandler();
+        }
+
+        sendResponse();
+
+    }
+
+    public void sendResponse() throws InterruptedException {
+
+        // A routed response is sent in the lane of its size, the owner only knows it after the lookup
+        if (permitLane == null) {
+            acquireLane(scheduler.getLane("GET", response.getBody().length()));
+        }
+
+        if (isKeepAlive) {
+            response.getHeaders().put("connection", "keep-alive");
+        }
+
         if (isDebug) {
             System.out.println("\n<<<<<<<<<<<<<<<<<<<<<<<<");
             System.out.println(this.response.toString());
@@ -132,20 +230,215 @@ public class HttpfsServiceThread extends Thread {
 
         try {
             OutputStream outputStream = socket.getOutputStream();
-            outputStream.write(response.toString().getBytes());
+            scheduler.write(permitLane, outputStream, response.toBytes());
             outputStream.flush();
-            socket.close();
+            if (!isKeepAlive) {
+                socket.close();
+            }
         } catch (IOException e) {
             e.printStackTrace();
+            isKeepAlive = false;
+            closeSocket();
         }
 
+    }
 
-        if (isDebug) {
-            System.out.println(Thread.currentThread().getName() + " finished");
+    public void localHandler() {
+
+        if (request.getMethod().equals("GET")) {
+            if (file.exists()) {
+                if (file.isDirectory()) {
+                    readDirectoryHandler();
+                } else if (file.isFile()) {
+                    readFileHandler();
+                }
+            } else {
+                fileNotExistResponseHandler();
+            }
+
+        } else if (request.getMethod().equals("POST")) {
+            if (file.exists() && file.isDirectory()) {
+                directoryAlreadyExistResponseHandler();
+            } else {
+                writeFileHandler();
+            }
+
+        } else {
+            methodNotAllowedResponseHandler();
+        }
+
+    }
+
+    public void clusterHandler() throws InterruptedException {
+
+        if (request.getMethod().equals("GET")) {
+            if (request.getPath().endsWith("/") || (!cluster.isRouter() && file.isDirectory())) {
+                listDirectoryClusterHandler();
+            } else {
+                readFileClusterHandler();
+            }
+
+        } else if (request.getMethod().equals("POST")) {
+            writeFileClusterHandler();
+
+        } else {
+            methodNotAllowedResponseHandler();
         }
 
     }
 
+    public void readFileClusterHandler() throws InterruptedException {
+
+        // The first owner holding the file answers, replicas are tried in ring order
+        boolean isReachable = false;
+        for (String node : cluster.getOwners(request.getPath())) {
+            Response nodeResponse = routeRequest(node);
+            if (nodeResponse == null) {
+                continue;
+            }
+            isReachable = true;
+            if (nodeResponse.getStatus().startsWith("200")
+                    && !"inline".equals(nodeResponse.getHeaders().get("content-disposition"))) {
+                this.response = nodeResponse;
+                return;
+            }
+        }
+
+        if (!isReachable) {
+            badGatewayResponseHandler();
+            return;
+        }
+
+        // The path may be a directory whose entries are spread over the shards
+        listDirectoryClusterHandler();
+
+    }
+
+    public void writeFileClusterHandler() throws InterruptedException {
+
+        // Write to every replica at once, the write only succeeds if all of them accept it
+        Response[] nodeResponses = routeRequests(cluster.getOwners(request.getPath()));
+        for (Response nodeResponse : nodeResponses) {
+            if (nodeResponse == null) {
+                badGatewayResponseHandler();
+                return;
+            }
+            if (!nodeResponse.getStatus().startsWith("200")) {
+                this.response = nodeResponse;
+                return;
+            }
+        }
+
+        this.response = nodeResponses[0];
+
+    }
+
+    public void listDirectoryClusterHandler() throws InterruptedException {
+
+        // Fan out to every shard and merge the entries they hold
+        List<String> nodes = new ArrayList<>();
+        for (String node : cluster.getNodes()) {
+            if (!cluster.isSelf(node) || file.isDirectory()) {
+                nodes.add(node);
+            }
+        }
+
+        TreeSet<String> entries = new TreeSet<>();
+        boolean isFound = false;
+        for (Response nodeResponse : routeRequests(nodes)) {
+            if (nodeResponse != null && nodeResponse.getStatus().startsWith("200")
+                    && "inline".equals(nodeResponse.getHeaders().get("content-disposition"))) {
+                isFound = true;
+                for (String entry : nodeResponse.getBody().split("\r\n")) {
+                    if (entry.length() > 0) {
+                        entries.add(entry);
+                    }
+                }
+            }
+        }
+
+        if (!isFound) {
+            fileNotExistResponseHandler();
+            return;
+        }
+
+        String status = "200 OK";
+        String body = "";
+        HashMap<String, String> headers = new HashMap<>();
+        for (String entry : entries) {
+            body = body.concat(entry + "\r\n");
+        }
+        headers.put("content-type", "text/plain");
+        headers.put("content-disposition", "inline");
+
+        this.response = new Response(status, headers, body);
+
+    }
+
+    public Response routeRequest(String node) throws InterruptedException {
+        if (cluster.isSelf(node)) {
+            return localResponse();
+        }
+        return forwardRequest(node);
+    }
+
+    // Forward to the peers in parallel and handle the local share in this thread, null marks an unreachable node
+    public Response[] routeRequests(List<String> nodes) throws InterruptedException {
+        Response[] nodeResponses = new Response[nodes.size()];
+        List<Thread> workers = new ArrayList<>();
+        int selfIndex = -1;
+        for (int i = 0; i < nodes.size(); i++) {
+            if (cluster.isSelf(nodes.get(i))) {
+                selfIndex = i;
+                continue;
+            }
+            int index = i;
+            Thread worker = new Thread(() -> nodeResponses[index] = forwardRequest(nodes.get(index)));
+            worker.start();
+            workers.add(worker);
+        }
+
+        if (selfIndex >= 0) {
+            nodeResponses[selfIndex] = localResponse();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return nodeResponses;
+    }
+
+    public Response localResponse() throws InterruptedException {
+        acquireLane(lane);
+        try {
+            localHandler();
+        } finally {
+            releaseLane();
+        }
+        return this.response;
+    }
+
+    public Response forwardRequest(String node) {
+        try {
+            if (isDebug) {
+                System.out.println("[INFO] " + Thread.currentThread().getName() + " forwards " + request.getPath() + " to " + node);
+            }
+            return cluster.forward(node, request);
+        } catch (IOException e) {
+            if (isDebug) {
+                System.out.println("[INFO] " + Thread.currentThread().getName() + " cannot reach " + node);
+            }
+            return null;
+        }
+    }
+
+    public void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public void readDirectoryHandler() {
 
         String status = "200 OK";
@@ -160,6 +453,8 @@ public class HttpfsServiceThread extends Thread {
                 body = body.concat("Directory: " + tempFileList[i].getName() + "\r\n");
             }
         }
+        // File names are sent as bytes of the platform charset
+        body = new String(body.getBytes(), StandardCharsets.ISO_8859_1);
         headers.put("content-type", "text/plain");
         headers.put("content-disposition", "inline");
 
@@ -211,7 +506,7 @@ public class HttpfsServiceThread extends Thread {
             String fileContent = "";
             Scanner myReader = null;
             try {
-                myReader = new Scanner(this.file);
+                myReader = new Scanner(this.file, "ISO-8859-1");
                 while (myReader.hasNextLine()) {
                     String data = myReader.nextLine();
                     fileContent = fileContent.concat(data);
@@ -306,7 +601,7 @@ public class HttpfsServiceThread extends Thread {
             writer.close();
 
             // write new content to the file
-            in = new ByteArrayInputStream(this.request.getBody().getBytes());
+            in = new ByteArrayInputStream(this.request.getBody().getBytes(StandardCharsets.ISO_8859_1));
             byte[] b = new byte[1024];
             int len = 0;
             ByteBuffer bb = ByteBuffer.allocate(1024);
@@ -402,6 +697,32 @@ public class HttpfsServiceThread extends Thread {
 
     }
 
+    public void payloadTooLargeResponseHandler() {
+
+        String status = "413 Payload Too Large";
+        String body = "Payload Too Large";
+
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put("content-type", "text/plain");
+        headers.put("content-disposition", "inline");
+
+        this.response = new Response(status, headers, body);
+
+    }
+
+    public void badGatewayResponseHandler() {
+
+        String status = "502 Bad Gateway";
+        String body = "Bad Gateway";
+
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put("content-type", "text/plain");
+        headers.put("content-disposition", "inline");
+
+        this.response = new Response(status, headers, body);
+
+    }
+
     public void methodNotAllowedResponseHandler() {
 
         String status = "405 Method Not Allowed";
@@ -42,6 +42,15 @@ public class Request {
         return headers;
     }
 
+    public String getHeader(String name) {
+        for (String key : this.headers.keySet()) {
+            if (key.equalsIgnoreCase(name)) {
+                return this.headers.get(key);
+            }
+        }
+        return null;
+    }
+
     public String getBody() {
         return body;
     }
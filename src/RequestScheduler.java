@@ -0,0 +1,108 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+
+public class RequestScheduler {
+
+    public static final String FAST_LANE = "fast";
+    public static final String BULK_LANE = "bulk";
+
+    // Bodies are buffered in memory, a byte array cannot hold more than this
+    public static final long MAX_BODY_LENGTH = Integer.MAX_VALUE - 8;
+    private static final int PACING_CHUNK_SIZE = 64 * 1024;
+
+    private Semaphore fastLane;
+    private Semaphore bulkLane;
+    private long bulkThreshold;
+    private long bulkBytesPerSecond;
+
+    public RequestScheduler(int fastLaneLimit, int bulkLaneLimit, long bulkThreshold, long bulkBytesPerSecond) {
+        this.fastLane = new Semaphore(fastLaneLimit, true);
+        this.bulkLane = new Semaphore(bulkLaneLimit, true);
+        this.bulkThreshold = bulkThreshold;
+        this.bulkBytesPerSecond = bulkBytesPerSecond;
+    }
+
+    // A GET of a large file or a POST of a large body goes to the bulk lane, everything else to the fast lane.
+    // The size is the file length for a GET and the content-length for a POST, -1 when unknown.
+    public String getLane(String method, long size) {
+        if ((method.equals("GET") || method.equals("POST")) && size >= bulkThreshold) {
+            return BULK_LANE;
+        }
+        return FAST_LANE;
+    }
+
+    public void acquire(String lane) throws InterruptedException {
+        if (lane.equals(BULK_LANE)) {
+            bulkLane.acquire();
+        } else {
+            fastLane.acquire();
+        }
+    }
+
+    public void release(String lane) {
+        if (lane.equals(BULK_LANE)) {
+            bulkLane.release();
+        } else {
+            fastLane.release();
+        }
+    }
+
+    public void write(String lane, OutputStream outputStream, byte[] data) throws IOException {
+        if (!isPaced(lane)) {
+            outputStream.write(data);
+            return;
+        }
+
+        // Pace bulk streams so one connection cannot take the whole link
+        long start = System.currentTimeMillis();
+        int offset = 0;
+        while (offset < data.length) {
+            int len = Math.min(PACING_CHUNK_SIZE, data.length - offset);
+            outputStream.write(data, offset, len);
+            offset += len;
+            pace(start, offset);
+        }
+    }
+
+    // Read a request body of the given length, each byte is kept as one char like the request header
+    public String read(String lane, InputStream inputStream, long length) throws IOException {
+        if (length > MAX_BODY_LENGTH) {
+            throw new IOException("Request body too large");
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] b = new byte[PACING_CHUNK_SIZE];
+        long start = System.currentTimeMillis();
+        while (body.size() < length) {
+            int len = inputStream.read(b, 0, (int) Math.min(b.length, length - body.size()));
+            if (len == -1) {
+                throw new IOException("Connection closed by client");
+            }
+            body.write(b, 0, len);
+            if (isPaced(lane)) {
+                pace(start, body.size());
+            }
+        }
+        return new String(body.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private boolean isPaced(String lane) {
+        return lane.equals(BULK_LANE) && bulkBytesPerSecond > 0;
+    }
+
+    private void pace(long start, long transferred) {
+        long expectedMillis = transferred * 1000L / bulkBytesPerSecond;
+        long elapsedMillis = System.currentTimeMillis() - start;
+        if (expectedMillis > elapsedMillis) {
+            try {
+                Thread.sleep(expectedMillis - elapsedMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
@@ -1,3 +1,4 @@
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -11,7 +12,7 @@ public class Response {
         this.status = status;
         this.headers = headers;
         this.body = body;
-        this.headers.put("content-length", String.valueOf(this.body.length()));
+        this.headers.put("content-length", String.valueOf(this.body.getBytes(StandardCharsets.ISO_8859_1).length));
         this.headers.put("server", "Concordia/COMP445A2");
     }
 
@@ -42,6 +43,11 @@ public class Response {
         this.body = body;
     }
 
+    // Each char of the response carries one byte, like the request read by the server
+    public byte[] toBytes() {
+        return this.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
     @Override
     public String toString() {
         String statusLine = "HTTP/1.0 " + status + "\r\n";
@@ -1,3 +1,15 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 
 public class Test {
     public static void main(String[] args) {
@@ -27,7 +39,161 @@ public class Test {
 //            e.printStackTrace();
 //        }
 
+        if (args.length > 0 && args[0].equals("-check")) {
+            // Exit explicitly, the servers of the cluster check keep running
+            try {
+                checkLanes();
+                checkRing();
+                checkCluster();
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            System.out.println("[INFO] All checks passed");
+            System.exit(0);
+        }
+
         Httpfs.main("-d ./test".split(" "));
 
     }
+
+    public static void checkLanes() {
+        RequestScheduler scheduler = new RequestScheduler(1, 1, 1024, 0);
+        check(scheduler.getLane("GET", -1).equals(RequestScheduler.FAST_LANE), "GET of an unknown size goes to the fast lane");
+        check(scheduler.getLane("GET", 1023).equals(RequestScheduler.FAST_LANE), "GET of a small file goes to the fast lane");
+        check(scheduler.getLane("GET", 1024).equals(RequestScheduler.BULK_LANE), "GET of a large file goes to the bulk lane");
+        check(scheduler.getLane("POST", 0).equals(RequestScheduler.FAST_LANE), "POST of an empty body goes to the fast lane");
+        check(scheduler.getLane("POST", 4096).equals(RequestScheduler.BULK_LANE), "POST of a large body goes to the bulk lane");
+        check(scheduler.getLane("DELETE", 4096).equals(RequestScheduler.FAST_LANE), "Unsupported methods go to the fast lane");
+    }
+
+    public static void checkRing() {
+        List<String> nodes = Arrays.asList("localhost:9001", "localhost:9002", "localhost:9003");
+        ConsistentHashRing ring = new ConsistentHashRing(nodes);
+        ConsistentHashRing sameRing = new ConsistentHashRing(nodes);
+        HashMap<String, Integer> primaries = new HashMap<>();
+        int keys = 3000;
+
+        for (int i = 0; i < keys; i++) {
+            String path = "/dir/file" + i + ".txt";
+            List<String> owners = ring.getOwners(path, 2);
+            check(owners.size() == 2 && !owners.get(0).equals(owners.get(1)), "Replicas are on distinct nodes");
+            check(owners.equals(sameRing.getOwners(path, 2)), "Owners are the same on every node");
+            check(owners.get(0).equals(ring.getOwners(path, 1).get(0)), "The primary does not depend on the replication factor");
+            check(ring.getOwners(path, 5).size() == nodes.size(), "Replicas are capped by the number of nodes");
+            primaries.merge(owners.get(0), 1, Integer::sum);
+        }
+        for (String node : nodes) {
+            check(primaries.getOrDefault(node, 0) > keys / 5, "Paths are spread over every node");
+        }
+
+        // Adding a node only moves the paths it takes over
+        List<String> grownNodes = new ArrayList<>(nodes);
+        grownNodes.add("localhost:9004");
+        ConsistentHashRing grownRing = new ConsistentHashRing(grownNodes);
+        int moved = 0;
+        for (int i = 0; i < keys; i++) {
+            String path = "/dir/file" + i + ".txt";
+            String before = ring.getOwners(path, 1).get(0);
+            String after = grownRing.getOwners(path, 1).get(0);
+            if (!before.equals(after)) {
+                check(after.equals("localhost:9004"), "Moved paths go to the new node");
+                moved++;
+            }
+        }
+        check(moved < keys * 2 / 5, "Adding a node moves only a slice of the paths");
+
+        check(ClusterRouter.normalizePath("//b.txt").equals("/b.txt"), "Repeated slashes are removed before hashing");
+        check(ClusterRouter.normalizePath("/./dir/../b.txt").equals("/b.txt"), "Dot segments are removed before hashing");
+        check(ClusterRouter.normalizePath("/dir/").equals("/dir"), "A trailing slash does not change the owners");
+    }
+
+    // Two nodes and a router on free localhost ports, each file is on one node only
+    public static void checkCluster() throws Exception {
+        int[] ports = {getFreePort(), getFreePort(), getFreePort()};
+        String nodes = "localhost:" + ports[0] + ",localhost:" + ports[1];
+        List<String> nodeList = ClusterRouter.parseNodes(nodes);
+        String[] directories = new String[3];
+        for (int i = 0; i < 3; i++) {
+            directories[i] = Files.createTempDirectory("httpfs").toString();
+            String router = i == 2 ? " -router" : "";
+            startService("-p " + ports[i] + " -d " + directories[i] + " -c " + nodes + " -r 1" + router);
+        }
+        Thread.sleep(500);
+
+        // Pick a file on each node whose raw spelling //name would hash to the other node
+        ConsistentHashRing ring = new ConsistentHashRing(nodeList);
+        String[] paths = new String[2];
+        for (int i = 0; paths[0] == null || paths[1] == null; i++) {
+            String path = "/file" + i + ".txt";
+            String owner = ring.getOwners(path, 1).get(0);
+            int index = nodeList.indexOf(owner);
+            if (paths[index] == null && !owner.equals(ring.getOwners("/" + path, 1).get(0))) {
+                paths[index] = path;
+            }
+        }
+
+        for (int i = 0; i < 2; i++) {
+            String response = send(ports[2], "POST", paths[i], "content " + i);
+            check(response.startsWith("HTTP/1.0 200"), "POST through the router succeeds");
+            check(new File(directories[i] + paths[i]).isFile(), "The file is written on its owner");
+            check(!new File(directories[1 - i] + paths[i]).exists(), "The file is not written on the other node");
+            check(!new File(directories[2] + paths[i]).exists(), "The router does not keep the file");
+        }
+
+        for (int i = 0; i < 2; i++) {
+            for (String spelling : new String[]{paths[i], "/" + paths[i], "/." + paths[i]}) {
+                String response = send(ports[2], "GET", spelling, "");
+                check(response.startsWith("HTTP/1.0 200"), "GET " + spelling + " through the router succeeds");
+                check(response.endsWith("\r\n\r\ncontent " + i), "GET " + spelling + " returns the content of the file");
+            }
+        }
+
+        String listing = send(ports[2], "GET", "/", "");
+        check(listing.startsWith("HTTP/1.0 200"), "Listing through the router succeeds");
+        for (String path : paths) {
+            check(listing.contains("File: " + path.substring(1) + "\r\n"), "Listing merges the files of both nodes");
+        }
+        check(send(ports[2], "GET", "/missing.txt", "").startsWith("HTTP/1.0 404"), "A missing file is not found");
+    }
+
+    public static void startService(String args) throws Exception {
+        HttpfsService service = new HttpfsService(args.split(" "));
+        Thread thread = new Thread(() -> {
+            try {
+                service.serve();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static int getFreePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    public static String send(int port, String method, String path, String body) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            String request = method + " " + path + " HTTP/1.0\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            InputStream inputStream = socket.getInputStream();
+            byte[] b = new byte[1024];
+            int len;
+            while ((len = inputStream.read(b)) != -1) {
+                response.write(b, 0, len);
+            }
+            return new String(response.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    public static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new RuntimeException("[ERROR] Check failed: " + message);
+        }
+    }
 }